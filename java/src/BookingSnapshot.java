@@ -0,0 +1,371 @@
+/*
+ * Columnar snapshot of RoomBookings
+ * =================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * This class keeps the customerID, hotelID, roomNumber and bookingDate
+ * columns of RoomBookings in a binary file and answers count queries from
+ * a memory-mapped view of it, without going through JDBC.
+ *
+ * File layout (all values are 4 byte ints):
+ *    header   magic, version, rowCount, hotelCount, maxBookingID, 3 x reserved
+ *    columns  hotelID[rowCount], roomNumber[rowCount], customerID[rowCount],
+ *             bookingDay[rowCount] (days since 1970-01-01)
+ *    index    hotelCount x (hotelID, first row of that hotel)
+ *
+ * Rows are sorted by hotelID and then bookingDay, so the rows of one hotel
+ * are contiguous and ordered by date. Scans read the mapped buffers with
+ * absolute gets and allocate nothing per row.
+ *
+ */
+public class BookingSnapshot {
+
+   private static final int MAGIC = 0x424B5331; // "BKS1"
+   private static final int VERSION = 1;
+   private static final int HEADER_BYTES = 32;
+
+   private final int _rowCount;
+   private final int _hotelCount;
+   private final int _maxBookingID;
+
+   // views over the mapped file
+   private final IntBuffer _hotel;
+   private final IntBuffer _room;
+   private final IntBuffer _customer;
+   private final IntBuffer _day;
+   private final IntBuffer _index;
+
+   private BookingSnapshot(ByteBuffer buf) throws IOException {
+      if (buf.capacity() < HEADER_BYTES || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+         throw new IOException("Not a booking snapshot file");
+      _rowCount = buf.getInt(8);
+      _hotelCount = buf.getInt(12);
+      _maxBookingID = buf.getInt(16);
+      if (_rowCount < 0 || _hotelCount < 0
+          || buf.capacity() < HEADER_BYTES + 16L * _rowCount + 8L * _hotelCount)
+         throw new IOException("Booking snapshot file is truncated");
+      _hotel = column(buf, 0);
+      _room = column(buf, 1);
+      _customer = column(buf, 2);
+      _day = column(buf, 3);
+      _index = slice(buf, HEADER_BYTES + 16 * _rowCount, 2 * _hotelCount);
+   }
+
+   private IntBuffer column(ByteBuffer buf, int col){
+      return slice(buf, HEADER_BYTES + 4 * col * _rowCount, _rowCount);
+   }
+
+   private static IntBuffer slice(ByteBuffer buf, int offset, int ints){
+      ByteBuffer b = buf.duplicate();
+      b.position(offset);
+      b.limit(offset + 4 * ints);
+      return b.slice().asIntBuffer();
+   }
+
+   /**
+    * Maps an existing snapshot file.
+    *
+    * @param path the snapshot file
+    * @return the snapshot
+    * @throws java.io.IOException when the file is missing or not a snapshot
+    */
+   public static BookingSnapshot open(String path) throws IOException {
+      try (RandomAccessFile raf = new RandomAccessFile(path, "r")){
+         // the mapping stays valid after the channel is closed
+         return new BookingSnapshot(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+      }
+   }
+
+   /**
+    * Creates the snapshot file, or brings an existing one up to date with
+    * the bookings added since it was written (bookingID greater than the
+    * highest one already in the file). Only the new rows are read from the
+    * database; they are merged with the existing rows into a new file that
+    * then replaces the old one.
+    *
+    * Bookings are only ever inserted by this program, so rows already in
+    * the snapshot are not re-read.
+    *
+    * @param esql the database connection
+    * @param path the snapshot file
+    * @return the refreshed snapshot
+    * @throws java.sql.SQLException when failed to read the new bookings
+    * @throws java.io.IOException when failed to write the file
+    */
+   public static BookingSnapshot refresh(Hotel esql, String path) throws SQLException, IOException {
+      BookingSnapshot old = new File(path).exists() ? open(path) : null;
+      int lastBookingID = old == null ? 0 : old._maxBookingID;
+
+      // the new rows, already in snapshot order
+      final IntColumns added = new IntColumns();
+      String query = String.format("select bookingID, customerID, hotelID, roomNumber, bookingDate from RoomBookings where bookingID > %d order by hotelID, bookingDate", lastBookingID);
+      esql.executeQueryWithCursor(query, Hotel.EXPORT_FETCH_SIZE, (rs, first) -> {
+         int n = 0;
+         while (rs.next()){
+            added.add(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4), toEpochDay(rs.getString(5)));
+            n++;
+         }
+         return n;
+      });
+      if (old != null && added.size == 0)
+         return old;
+
+      // a file of its own, so two refreshes of the same snapshot cannot
+      // write into each other; whichever finishes last replaces the file
+      File target = new File(path).getAbsoluteFile();
+      File tmp = File.createTempFile(target.getName() + ".refresh", ".part", target.getParentFile());
+      boolean moved = false;
+      try{
+         write(old, added, tmp, Math.max(lastBookingID, added.maxBookingID));
+         Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+         moved = true;
+      }finally{
+         if (!moved)
+            tmp.delete();
+      }
+      return open(path);
+   }
+
+   // merges the old snapshot (may be null) with the added rows into file
+   private static void write(BookingSnapshot old, IntColumns added, File file, int maxBookingID) throws IOException {
+      int oldCount = old == null ? 0 : old._rowCount;
+      long rows = (long) oldCount + added.size;
+      long columnBytes = HEADER_BYTES + 16 * rows;
+      // the merged index has at most the old hotels plus the added ones;
+      // the whole file must fit in one mapping when it is opened again
+      long hotelBound = (old == null ? 0 : old._hotelCount) + added.hotelCount();
+      if (columnBytes + 8 * hotelBound > Integer.MAX_VALUE)
+         throw new IOException("Too many bookings for one snapshot file: " + rows);
+      int n = (int) rows;
+
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+         raf.setLength(0);
+         FileChannel ch = raf.getChannel();
+         MappedByteBuffer out = ch.map(FileChannel.MapMode.READ_WRITE, 0, columnBytes);
+         IntBuffer hotel = slice(out, HEADER_BYTES, n);
+         IntBuffer room = slice(out, HEADER_BYTES + 4 * n, n);
+         IntBuffer customer = slice(out, HEADER_BYTES + 8 * n, n);
+         IntBuffer day = slice(out, HEADER_BYTES + 12 * n, n);
+
+         // both inputs are sorted by (hotelID, bookingDay); old rows go first on ties
+         // index entries: hotelID and the first row of that hotel
+         int[] indexHotel = new int[1024];
+         int[] indexStart = new int[1024];
+         int hotelCount = 0;
+         int i = 0, j = 0;
+         for (int row = 0; row < n; row++){
+            boolean takeOld = j >= added.size
+               || (i < oldCount && compare(old._hotel.get(i), old._day.get(i), added.hotel[j], added.day[j]) <= 0);
+            int h;
+            if (takeOld){
+               h = old._hotel.get(i);
+               room.put(row, old._room.get(i));
+               customer.put(row, old._customer.get(i));
+               day.put(row, old._day.get(i));
+               i++;
+            } else {
+               h = added.hotel[j];
+               room.put(row, added.room[j]);
+               customer.put(row, added.customer[j]);
+               day.put(row, added.day[j]);
+               j++;
+            }
+            hotel.put(row, h);
+            if (hotelCount == 0 || indexHotel[hotelCount - 1] != h){
+               if (hotelCount == indexHotel.length){
+                  indexHotel = Arrays.copyOf(indexHotel, hotelCount * 2);
+                  indexStart = Arrays.copyOf(indexStart, hotelCount * 2);
+               }
+               indexHotel[hotelCount] = h;
+               indexStart[hotelCount] = row;
+               hotelCount++;
+            }
+         }
+
+         MappedByteBuffer idx = ch.map(FileChannel.MapMode.READ_WRITE, columnBytes, 8L * hotelCount);
+         for (int k = 0; k < hotelCount; k++){
+            idx.putInt(indexHotel[k]);
+            idx.putInt(indexStart[k]);
+         }
+
+         out.putInt(0, MAGIC);
+         out.putInt(4, VERSION);
+         out.putInt(8, n);
+         out.putInt(12, hotelCount);
+         out.putInt(16, maxBookingID);
+         out.force();
+         idx.force();
+      }
+   }
+
+   private static int compare(int hotel1, int day1, int hotel2, int day2){
+      if (hotel1 != hotel2)
+         return hotel1 < hotel2 ? -1 : 1;
+      return Integer.compare(day1, day2);
+   }
+
+   // converts a date in the format (YYYY-MM-dd) to days since 1970-01-01
+   public static int toEpochDay(String date){
+      return (int) LocalDate.parse(date.trim()).toEpochDay();
+   }
+
+   public int rowCount(){
+      return _rowCount;
+   }
+
+   public int maxBookingID(){
+      return _maxBookingID;
+   }
+
+   /**
+    * @return the number of bookings at the hotel
+    */
+   public int countForHotel(int hotelID){
+      return countForHotel(hotelID, Integer.MIN_VALUE, Integer.MAX_VALUE);
+   }
+
+   /**
+    * Counts the bookings at a hotel between two dates (inclusive). The
+    * hotel's rows are found through the index and the dates by binary
+    * search, so this does not depend on the number of rows.
+    *
+    * @param hotelID the hotel
+    * @param fromDay first day, see toEpochDay
+    * @param toDay last day, see toEpochDay
+    * @return the number of matching bookings
+    */
+   public int countForHotel(int hotelID, int fromDay, int toDay){
+      if (fromDay > toDay)
+         return 0;
+      int lo = 0, hi = _hotelCount - 1;
+      while (lo <= hi){
+         int mid = (lo + hi) >>> 1;
+         int h = _index.get(2 * mid);
+         if (h < hotelID)
+            lo = mid + 1;
+         else if (h > hotelID)
+            hi = mid - 1;
+         else {
+            int start = _index.get(2 * mid + 1);
+            int end = mid + 1 < _hotelCount ? _index.get(2 * mid + 3) : _rowCount;
+            return firstDayAfter(start, end, toDay) - firstDayAfter(start, end, fromDay - 1L);
+         }
+      }
+      return 0;
+   }
+
+   // first row in [start, end) whose day is greater than day
+   private int firstDayAfter(int start, int end, long day){
+      int lo = start, hi = end;
+      while (lo < hi){
+         int mid = (lo + hi) >>> 1;
+         if (_day.get(mid) <= day)
+            lo = mid + 1;
+         else
+            hi = mid;
+      }
+      return lo;
+   }
+
+   /**
+    * @return the number of bookings made by the customer
+    */
+   public int countForCustomer(int customerID){
+      return countForCustomer(customerID, Integer.MIN_VALUE, Integer.MAX_VALUE);
+   }
+
+   /**
+    * Counts the bookings made by a customer between two dates (inclusive).
+    * This scans the customer and date columns.
+    *
+    * @param customerID the customer
+    * @param fromDay first day, see toEpochDay
+    * @param toDay last day, see toEpochDay
+    * @return the number of matching bookings
+    */
+   public int countForCustomer(int customerID, int fromDay, int toDay){
+      int count = 0;
+      for (int row = 0; row < _rowCount; row++){
+         if (_customer.get(row) == customerID){
+            int d = _day.get(row);
+            if (d >= fromDay && d <= toDay)
+               count++;
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Counts all bookings between two dates (inclusive) by scanning the date
+    * column.
+    *
+    * @param fromDay first day, see toEpochDay
+    * @param toDay last day, see toEpochDay
+    * @return the number of matching bookings
+    */
+   public int countInRange(int fromDay, int toDay){
+      int count = 0;
+      for (int row = 0; row < _rowCount; row++){
+         int d = _day.get(row);
+         if (d >= fromDay && d <= toDay)
+            count++;
+      }
+      return count;
+   }
+
+   /*
+    * Growable int columns used while building a snapshot.
+    **/
+   private static class IntColumns {
+      int size = 0;
+      int maxBookingID = 0;
+      int[] customer = new int[1024];
+      int[] hotel = new int[1024];
+      int[] room = new int[1024];
+      int[] day = new int[1024];
+
+      void add(int bookingID, int customerID, int hotelID, int roomNumber, int bookingDay){
+         if (size == hotel.length){
+            int cap = size * 2;
+            customer = Arrays.copyOf(customer, cap);
+            hotel = Arrays.copyOf(hotel, cap);
+            room = Arrays.copyOf(room, cap);
+            day = Arrays.copyOf(day, cap);
+         }
+         customer[size] = customerID;
+         hotel[size] = hotelID;
+         room[size] = roomNumber;
+         day[size] = bookingDay;
+         maxBookingID = Math.max(maxBookingID, bookingID);
+         size++;
+      }
+
+      // number of different hotels; rows are added sorted by hotelID
+      int hotelCount(){
+         int count = 0;
+         for (int i = 0; i < size; i++)
+            if (i == 0 || hotel[i] != hotel[i - 1])
+               count++;
+         return count;
+      }
+   }
+
+}//end BookingSnapshot
@@ -21,8 +21,33 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPOutputStream;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.lang.Math;
 import java.text.ParseException; 
 import java.text.SimpleDateFormat; 
@@ -37,6 +62,77 @@ public class Hotel {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // number of worker threads used by the async query helpers. There is
+   // only one physical connection and every worker holds its lock while its
+   // query runs, so queries run one at a time and more threads would only
+   // sit blocked on the lock.
+   public static int ASYNC_POOL_SIZE = 1;
+
+   // default time an async caller waits before giving up (milliseconds).
+   public static long ASYNC_TIMEOUT_MS = 5000;
+
+   // bounded pool for async queries and a timer for their timeouts,
+   // both created on first use. The timer must never run blocking work,
+   // or timeouts stop firing on time.
+   private ExecutorService _queryPool = null;
+   private ScheduledExecutorService _scheduler = null;
+
+   // queries currently running, keyed by normalized SQL. Identical
+   // concurrent requests attach to the same entry instead of issuing
+   // their own round-trip.
+   private final ConcurrentHashMap<String, InFlightQuery> _inFlight =
+      new ConcurrentHashMap<String, InFlightQuery>();
+
+   /*
+    * A query sent by executeQueryAsync and the callers waiting for it.
+    * When the last caller cancels or times out the query is abandoned:
+    * it is dropped if it has not started, or cancelled on the server.
+    **/
+   private static class InFlightQuery {
+      final String key;
+      final CompletableFuture<List<List<String>>> result = new CompletableFuture<List<List<String>>>();
+      volatile Future<?> task = null;
+      // the fields below are guarded by this
+      int waiters = 1;
+      boolean abandoned = false;
+      Statement statement = null;
+
+      InFlightQuery(String key){
+         this.key = key;
+      }
+   }
+
+   // coalescing metrics: requests made vs. queries actually sent.
+   private final AtomicLong _asyncRequests = new AtomicLong();
+   private final AtomicLong _asyncRoundTrips = new AtomicLong();
+
+   // size of the latitude/longitude grid cells used to group nearby hotels
+   // into one repair work order (same units as calculate_distance).
+   public static double REPAIR_DISPATCH_CELL = 10.0;
+
+   // background repair dispatch task and its own thread, if one was started.
+   private ScheduledExecutorService _dispatchScheduler = null;
+   private ScheduledFuture<?> _repairDispatcher = null;
+
+   // results of background dispatch cycles, shown to the manager the next
+   // time the menu is printed instead of in the middle of a prompt.
+   private final ConcurrentLinkedQueue<String> _dispatchNotices = new ConcurrentLinkedQueue<String>();
+
+   // rows fetched per round-trip when streaming a query through a cursor.
+   public static int EXPORT_FETCH_SIZE = 1000;
+
+   /**
+    * Receives one batch of rows from executeQueryWithCursor.
+    */
+   public interface RowBatchHandler {
+      /**
+       * @param rs the rows of this batch, positioned before the first row
+       * @param first true for the first batch of the query
+       * @return the number of rows read from rs
+       */
+      int handle(ResultSet rs, boolean first) throws SQLException, IOException;
+   }
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -197,6 +293,376 @@ public class Hotel {
        stmt.close ();
        return rowCount;
    }
+
+   /**
+    * Non-blocking variant of executeQueryAndReturnResult using the default
+    * timeout (ASYNC_TIMEOUT_MS).
+    *
+    * @param query the input query string
+    * @return a future holding the query result as a list of records
+    */
+   public CompletableFuture<List<List<String>>> executeQueryAsync (String query) {
+      return executeQueryAsync(query, ASYNC_TIMEOUT_MS);
+   }
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) on the
+    * async worker pool. If an identical query (after normalization) is
+    * already running, the caller shares its result instead of sending a
+    * second query to the DBMS.
+    *
+    * Each caller gets its own future. Cancelling it or letting it time out
+    * detaches that caller; the other callers still get the result. Once no
+    * caller is left waiting, the query is dropped before it starts or
+    * cancelled on the server, so it stops holding the connection.
+    *
+    * @param query the input query string
+    * @param timeoutMillis how long to wait for the result, 0 to wait forever
+    * @return a future holding the query result as a list of records
+    */
+   public CompletableFuture<List<List<String>>> executeQueryAsync (final String query, final long timeoutMillis) {
+      _asyncRequests.incrementAndGet();
+      final String key = normalizeQuery(query);
+
+      InFlightQuery entry;
+      while (true) {
+         entry = _inFlight.get(key);
+         if (entry == null) {
+            final InFlightQuery created = new InFlightQuery(key);
+            entry = _inFlight.putIfAbsent(key, created);
+            if (entry == null) {
+               // this caller won the race, so it issues the query.
+               entry = created;
+               _asyncRoundTrips.incrementAndGet();
+               try {
+                  created.task = queryPool().submit(() -> runInFlight(created, query));
+               } catch (RuntimeException e) {
+                  // pool was shut down or rejected the task
+                  _inFlight.remove(key, created);
+                  created.result.completeExceptionally(e);
+               }
+               break;
+            }
+         }
+         synchronized (entry) {
+            if (!entry.abandoned) {
+               entry.waiters++;
+               break;
+            }
+         }
+         // the last waiter just gave up on it; start a new one
+         _inFlight.remove(key, entry);
+      }
+
+      final InFlightQuery shared = entry;
+      final CompletableFuture<List<List<String>>> caller = new CompletableFuture<List<List<String>>>();
+      if (timeoutMillis > 0) {
+         final ScheduledFuture<?> timer = scheduler().schedule(() -> {
+            caller.completeExceptionally(new TimeoutException("Query timed out after " + timeoutMillis + " ms"));
+         }, timeoutMillis, TimeUnit.MILLISECONDS);
+         caller.whenComplete((r, e) -> timer.cancel(false));
+      }
+      caller.whenComplete((r, e) -> {
+         // cancelled or timed out before the query finished
+         if (!shared.result.isDone())
+            releaseInFlight(shared);
+      });
+      shared.result.whenComplete((r, e) -> {
+         if (e != null)
+            caller.completeExceptionally(e);
+         else
+            caller.complete(r);
+      });
+      return caller;
+   }
+
+   // runs an async query on a pool thread unless every caller has given up.
+   private void runInFlight(InFlightQuery entry, String query){
+      try {
+         synchronized (_connection) {
+            Statement stmt;
+            synchronized (entry) {
+               if (entry.abandoned)
+                  return;
+               stmt = this._connection.createStatement ();
+               entry.statement = stmt;
+            }
+            try {
+               ResultSet rs = stmt.executeQuery (query);
+               int numCol = rs.getMetaData ().getColumnCount ();
+               // callers share the result, so neither the list nor its
+               // records may be modified
+               List<List<String>> result = new ArrayList<List<String>>();
+               while (rs.next()){
+                  List<String> record = new ArrayList<String>(numCol);
+                  for (int i=1; i<=numCol; ++i)
+                     record.add(rs.getString (i));
+                  result.add(Collections.unmodifiableList(record));
+               }
+               _inFlight.remove(entry.key, entry);
+               entry.result.complete(Collections.unmodifiableList(result));
+            } finally {
+               // a pending cancel holds the entry lock, so this waits for it
+               // and the connection cannot pass to the next query mid-cancel
+               synchronized (entry) {
+                  entry.statement = null;
+               }
+               stmt.close ();
+            }
+         }
+      } catch (Throwable e) {
+         _inFlight.remove(entry.key, entry);
+         entry.result.completeExceptionally(e);
+      }
+   }
+
+   // called when a caller stops waiting; the last one abandons the query.
+   private void releaseInFlight(final InFlightQuery entry){
+      final Statement running;
+      synchronized (entry) {
+         if (--entry.waiters > 0 || entry.abandoned)
+            return;
+         entry.abandoned = true;
+         running = entry.statement;
+      }
+      _inFlight.remove(entry.key, entry);
+      Future<?> task = entry.task;
+      if (task != null)
+         task.cancel(false);
+      if (running != null) {
+         // cancel() opens its own connection to the server, so keep it off
+         // the timeout thread. The pg driver cancels whatever the connection
+         // is running, not one statement, so only cancel while this query
+         // still owns the connection; runInFlight clears entry.statement
+         // under the same lock before it lets the connection go.
+         CompletableFuture.runAsync(() -> {
+            synchronized (entry) {
+               if (entry.statement != running)
+                  return;
+               try {
+                  running.cancel();
+               } catch (SQLException e) {
+                  // the cancel request could not be sent; the query then
+                  // runs to completion and its result is dropped
+               }
+            }
+         });
+      }
+      entry.result.completeExceptionally(new CancellationException("No callers left waiting for the query"));
+   }
+
+   /**
+    * Normalizes a query string so equivalent requests share one key:
+    * collapses whitespace and drops the trailing semicolon. Parameters are
+    * formatted into the SQL text, so they are part of the key as well.
+    *
+    * @param query the input query string
+    * @return the normalized query
+    */
+   public static String normalizeQuery(String query){
+      StringBuilder sb = new StringBuilder(query.length());
+      boolean inLiteral = false;
+      boolean pendingSpace = false;
+      for (int i = 0; i < query.length(); i++){
+         char c = query.charAt(i);
+         if (!inLiteral && Character.isWhitespace(c)){
+            pendingSpace = sb.length() > 0;
+            continue;
+         }
+         if (pendingSpace){
+            sb.append(' ');
+            pendingSpace = false;
+         }
+         // text inside '...' is data, so it is kept exactly as given
+         if (c == '\'')
+            inLiteral = !inLiteral;
+         sb.append(c);
+      }
+      int end = sb.length();
+      while (end > 0 && (sb.charAt(end - 1) == ';' || sb.charAt(end - 1) == ' '))
+         end--;
+      return sb.substring(0, end);
+   }
+
+   // number of async query requests made so far.
+   public long getAsyncRequestCount(){
+      return _asyncRequests.get();
+   }
+
+   // number of queries the async helpers actually sent to the DBMS.
+   public long getAsyncRoundTripCount(){
+      return _asyncRoundTrips.get();
+   }
+
+   // requests served per round-trip; 1.0 means nothing was coalesced.
+   public double getCoalescingRatio(){
+      long trips = _asyncRoundTrips.get();
+      return trips == 0 ? 0.0 : (double) _asyncRequests.get() / trips;
+   }
+
+   private synchronized ExecutorService queryPool(){
+      if (_queryPool == null)
+         _queryPool = Executors.newFixedThreadPool(ASYNC_POOL_SIZE, daemonThreads("hotel-query"));
+      return _queryPool;
+   }
+
+   private synchronized ScheduledExecutorService scheduler(){
+      if (_scheduler == null)
+         _scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("hotel-scheduler"));
+      return _scheduler;
+   }
+
+   // background threads must not keep the program alive after EXIT.
+   private static ThreadFactory daemonThreads(final String name){
+      return r -> {
+         Thread t = new Thread(r, name);
+         t.setDaemon(true);
+         return t;
+      };
+   }
+
+   /**
+    * Builds the statement that turns every pending room repair into a
+    * batched work order. Repairs are grouped by maintenance company and by
+    * the grid cell of the hotel's latitude/longitude, so one order covers a
+    * company's jobs at nearby hotels. The whole cycle is a single set-based
+    * statement: it creates the orders, links each repair to its order,
+    * marks the repairs dispatched and returns the new orders, so it is
+    * atomic and needs no per-row work. Pending repairs are found through
+    * the partial index of undispatched repairs, so a cycle costs the
+    * size of the open backlog, not of the whole repair history.
+    *
+    * @param cellSize the grid cell size used for hotel proximity
+    * @return the dispatch statement
+    */
+   public static String repairDispatchQuery(double cellSize){
+      return repairDispatchQuery(cellSize, null);
+   }
+
+   /**
+    * Same as repairDispatchQuery(cellSize), limited to the pending repairs
+    * at hotels run by one manager.
+    *
+    * @param cellSize the grid cell size used for hotel proximity
+    * @param managerID the manager's userID, or null for every hotel
+    * @return the dispatch statement
+    */
+   public static String repairDispatchQuery(double cellSize, String managerID){
+      String scope = managerID == null ? "" : String.format("AND Hotel.managerUserID = %s ", managerID);
+      return String.format(
+         "WITH pending AS (" +
+            "SELECT r.repairID, r.companyID, " +
+                   "CAST(floor(Hotel.latitude / %1$s) AS integer) AS cellLat, " +
+                   "CAST(floor(Hotel.longitude / %1$s) AS integer) AS cellLong " +
+            "FROM RoomRepairs r, Hotel " +
+            "WHERE Hotel.hotelID = r.hotelID AND NOT r.dispatched %2$s), " +
+         // dense_rank gives every (company, cell) pair a plain integer key,
+         // including hotels with no coordinates (null cell)
+         "ranked AS (" +
+            "SELECT p.*, dense_rank() OVER (ORDER BY p.companyID, p.cellLat, p.cellLong) AS grp FROM pending p), " +
+         "groups AS (" +
+            "SELECT grp, nextval('repairworkorders_workorderid_seq') AS workOrderID, " +
+                   "companyID, cellLat, cellLong, count(*) AS numRepairs " +
+            "FROM ranked GROUP BY grp, companyID, cellLat, cellLong), " +
+         "orders AS (" +
+            "INSERT INTO RepairWorkOrders (workOrderID, companyID, cellLat, cellLong, numRepairs) " +
+            "SELECT workOrderID, companyID, cellLat, cellLong, numRepairs FROM groups " +
+            "RETURNING workOrderID, companyID, cellLat, cellLong, numRepairs, dispatchedOn), " +
+         "items AS (" +
+            "INSERT INTO RepairWorkOrderItems (workOrderID, repairID) " +
+            "SELECT groups.workOrderID, ranked.repairID FROM ranked, groups WHERE ranked.grp = groups.grp), " +
+         "marked AS (" +
+            "UPDATE RoomRepairs SET dispatched = true FROM ranked WHERE RoomRepairs.repairID = ranked.repairID) " +
+         "SELECT * FROM orders ORDER BY companyID, cellLat, cellLong;",
+         Double.toString(cellSize), scope);
+   }
+
+   /**
+    * Method to run one repair dispatch cycle.
+    *
+    * @param cellSize the grid cell size used for hotel proximity
+    * @return the work orders created, one record per order
+    * @throws java.sql.SQLException when the dispatch failed
+    */
+   public List<List<String>> dispatchRepairs(double cellSize) throws SQLException {
+      synchronized (_connection) {
+         return executeQueryAndReturnResult(repairDispatchQuery(cellSize));
+      }
+   }
+
+   /**
+    * Starts dispatching pending repairs in the background every
+    * periodMinutes. Calling it again replaces the previous cadence.
+    *
+    * @param periodMinutes time between dispatch cycles
+    */
+   public synchronized void startRepairDispatcher(long periodMinutes){
+      if (_repairDispatcher != null)
+         _repairDispatcher.cancel(false);
+      // a cycle can run for a long time or wait on the connection, so it
+      // gets its own thread rather than the async timeout timer
+      if (_dispatchScheduler == null)
+         _dispatchScheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("hotel-repair-dispatch"));
+      _repairDispatcher = _dispatchScheduler.scheduleWithFixedDelay(() -> {
+         try{
+            List<List<String>> orders = dispatchRepairs(REPAIR_DISPATCH_CELL);
+            if (!orders.isEmpty()){
+               int repairs = 0;
+               for (List<String> order : orders)
+                  repairs += Integer.parseInt(order.get(4).trim());
+               _dispatchNotices.add(orders.size() + " work orders created for " + repairs + " repairs");
+            }
+         }catch(Exception e){
+            // keep the schedule running; the next cycle retries
+            _dispatchNotices.add("dispatch failed: " + e.getMessage());
+         }
+      }, periodMinutes, periodMinutes, TimeUnit.MINUTES);
+   }
+
+   /**
+    * Returns the results of background dispatch cycles since the last call.
+    *
+    * @return one line per cycle that created orders or failed
+    */
+   public List<String> takeDispatchNotices(){
+      List<String> notices = new ArrayList<String>();
+      String notice;
+      while ((notice = _dispatchNotices.poll()) != null)
+         notices.add(notice);
+      return notices;
+   }
+
+   /**
+    * Builds the query behind the room search: every room within radius of
+    * (latitude, longitude) that costs at most maxPrice and has no booking
+    * between startDate and endDate, nearest and cheapest first.
+    *
+    * The bounding box lets the planner use the Hotel location index before
+    * the exact distance is checked, and the distance is computed inline
+    * instead of calling calculate_distance once per hotel.
+    *
+    * @return the search query for one page of results
+    */
+   public static String searchAvailableRoomsQuery(double latitude, double longitude, double radius,
+                                                  String startDate, String endDate, int maxPrice,
+                                                  int limit, int offset){
+      return String.format(
+         "select h.hotelID, h.hotelName, Rooms.roomNumber, Rooms.price, h.UnitsAway " +
+         "from (select Hotel.hotelID, Hotel.hotelName, " +
+                      "sqrt((Hotel.latitude - %1$s) * (Hotel.latitude - %1$s) + (Hotel.longitude - %2$s) * (Hotel.longitude - %2$s)) as UnitsAway " +
+               "from Hotel " +
+               "where Hotel.latitude between %1$s - %3$s and %1$s + %3$s " +
+               "and Hotel.longitude between %2$s - %3$s and %2$s + %3$s) h, Rooms " +
+         "where Rooms.hotelID = h.hotelID and h.UnitsAway < %3$s and Rooms.price <= %4$d " +
+         "and not exists (select 1 from RoomBookings where RoomBookings.hotelID = Rooms.hotelID " +
+                         "and RoomBookings.roomNumber = Rooms.roomNumber " +
+                         "and RoomBookings.bookingDate between '%5$s' and '%6$s') " +
+         "order by h.UnitsAway, Rooms.price, h.hotelID, Rooms.roomNumber " +
+         "limit %7$d offset %8$d;",
+         Double.toString(latitude), Double.toString(longitude), Double.toString(radius),
+         maxPrice, startDate, endDate, limit, offset);
+   }
+
    public static boolean isValidDate(String input){
       SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd"); 
       format.setLenient(false); 
@@ -210,6 +676,173 @@ public class Hotel {
 
    }
 
+   // checks that both dates are valid and the first is not after the second
+   public static boolean isValidDateRange(String start, String end){
+      if (!isValidDate(start) || !isValidDate(end))
+         return false;
+      SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+      format.setLenient(false);
+      try{
+         return !format.parse(start.trim()).after(format.parse(end.trim()));
+      } catch(ParseException e){
+         return false;
+      }
+   }
+
+   /**
+    * Method to stream the result of a query through a server-side cursor.
+    * Rows are fetched fetchSize at a time and handed to the handler, so
+    * memory use does not grow with the size of the result.
+    *
+    * @param query the input query string
+    * @param fetchSize number of rows fetched per round-trip
+    * @param handler receives each batch of rows
+    * @return the number of rows streamed
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.io.IOException when the handler failed to write the rows
+    */
+   public long executeQueryWithCursor (String query, int fetchSize, RowBatchHandler handler) throws SQLException, IOException {
+      String q = query.trim();
+      while (q.endsWith(";"))
+         q = q.substring(0, q.length() - 1).trim();
+
+      // the cursor name is fixed; that is safe only because the whole
+      // transaction runs while holding the connection lock, so no other
+      // cursor can be open on this connection at the same time
+      synchronized (_connection) {
+         // cursors only live inside a transaction block
+         boolean autoCommit = _connection.getAutoCommit();
+         _connection.setAutoCommit(false);
+         Statement stmt = _connection.createStatement ();
+         try{
+            stmt.execute("DECLARE export_cursor NO SCROLL CURSOR FOR " + q);
+            long rowCount = 0;
+            boolean first = true;
+            while (true){
+               ResultSet rs = stmt.executeQuery("FETCH FORWARD " + fetchSize + " FROM export_cursor");
+               int n = handler.handle(rs, first);
+               rs.close();
+               rowCount += n;
+               first = false;
+               if (n < fetchSize)
+                  break;
+            }
+            stmt.execute("CLOSE export_cursor");
+            _connection.commit();
+            return rowCount;
+         }catch (SQLException | IOException | RuntimeException e){
+            try{
+               _connection.rollback();
+            }catch (SQLException rollbackError){
+               // report the export failure, not the failed cleanup
+               e.addSuppressed(rollbackError);
+            }
+            throw e;
+         }finally{
+            stmt.close();
+            _connection.setAutoCommit(autoCommit);
+         }
+      }
+   }
+
+   /**
+    * Method to export the result of a query as CSV with a header line.
+    * The rows are streamed, so any number of rows uses constant memory.
+    *
+    * @param query the input query string
+    * @param out where the CSV is written; it is flushed but not closed
+    * @return the number of rows exported
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.io.IOException when failed to write the output
+    */
+   public long exportQueryToCsv (String query, OutputStream out) throws SQLException, IOException {
+      final Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+      long rowCount = executeQueryWithCursor(query, EXPORT_FETCH_SIZE, (rs, first) -> {
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         if (first){
+            for (int i = 1; i <= numCol; i++){
+               if (i > 1) w.write(',');
+               writeCsvField(w, rsmd.getColumnName(i));
+            }
+            w.write("\r\n");
+         }
+         int n = 0;
+         while (rs.next()){
+            for (int i = 1; i <= numCol; i++){
+               if (i > 1) w.write(',');
+               writeCsvField(w, rs.getString(i));
+            }
+            w.write("\r\n");
+            n++;
+         }
+         return n;
+      });
+      w.flush();
+      return rowCount;
+   }
+
+   /**
+    * Method to export the result of a query to a CSV file. The rows are
+    * written to a temporary file that replaces path only once the export
+    * has finished, so a failed export never leaves a partial file behind.
+    *
+    * @param query the input query string
+    * @param path the file to write
+    * @param gzip true to gzip-compress the file
+    * @return the number of rows exported
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.io.IOException when failed to write the file
+    */
+   public long exportQueryToCsv (String query, String path, boolean gzip) throws SQLException, IOException {
+      File target = new File(path).getAbsoluteFile();
+      // createTempFile needs a prefix of at least 3 characters
+      File tmp = File.createTempFile(target.getName() + ".export", ".part", target.getParentFile());
+      boolean done = false;
+      try{
+         long rowCount;
+         try (OutputStream file = new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16);
+              OutputStream out = gzip ? new GZIPOutputStream(file, 1 << 16) : file){
+            rowCount = exportQueryToCsv(query, out);
+         }
+         Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+         done = true;
+         return rowCount;
+      }finally{
+         if (!done)
+            tmp.delete();
+      }
+   }
+
+   // writes one CSV field, quoting it when needed (RFC 4180). null is written as an empty field.
+   // These files are opened in spreadsheets, so text starting with = + - @ (e.g. a user name)
+   // would run as a formula; such fields get a leading ' and are quoted. Numbers are left alone.
+   private static void writeCsvField(Writer w, String value) throws IOException {
+      if (value == null)
+         return;
+      if (startsLikeFormula(value) && !value.matches("-?[0-9]+(\\.[0-9]+)?"))
+         value = "'" + value;
+      boolean quote = value.startsWith("'");
+      for (int i = 0; i < value.length() && !quote; i++){
+         char c = value.charAt(i);
+         quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }
+      if (!quote){
+         w.write(value);
+         return;
+      }
+      w.write('"');
+      w.write(value.replace("\"", "\"\""));
+      w.write('"');
+   }
+
+   private static boolean startsLikeFormula(String value){
+      if (value.isEmpty())
+         return false;
+      char c = value.charAt(0);
+      return c == '=' || c == '+' || c == '-' || c == '@' || c == '\t' || c == '\r';
+   }
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
@@ -239,6 +872,14 @@ public class Hotel {
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      synchronized (this){
+         if (_queryPool != null)
+            _queryPool.shutdownNow();
+         if (_scheduler != null)
+            _scheduler.shutdownNow();
+         if (_dispatchScheduler != null)
+            _dispatchScheduler.shutdownNow();
+      }
       try{
          if (this._connection != null){
             this._connection.close ();
@@ -275,6 +916,11 @@ public class Hotel {
          String user = args[2];
          esql = new Hotel (dbname, dbport, user, "");
 
+         // optional background repair dispatch, e.g. -Dhotel.repairDispatchMinutes=15
+         long dispatchMinutes = Long.parseLong(System.getProperty("hotel.repairDispatchMinutes", "0"));
+         if (dispatchMinutes > 0)
+            esql.startRepairDispatcher(dispatchMinutes);
+
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
@@ -291,14 +937,20 @@ public class Hotel {
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
             if (authorisedUser != null) {
+              boolean manager = isManager(esql, authorisedUser);
               boolean usermenu = true;
               while(usermenu) {
+                if (manager) {
+                  for (String notice : esql.takeDispatchNotices())
+                    System.out.println("[repair dispatch] " + notice);
+                }
                 System.out.println("MAIN MENU");
                 System.out.println("---------");
                 System.out.println("1. View Hotels within 30 units");
                 System.out.println("2. View Rooms");
                 System.out.println("3. Book a Room");
                 System.out.println("4. View recent booking history");
+                System.out.println("13. Search available rooms near you");
 
                 //the following functionalities basically used by managers
                 System.out.println("5. Update Room Information");
@@ -307,6 +959,9 @@ public class Hotel {
                 System.out.println("8. View 5 regular Customers");
                 System.out.println("9. Place room repair Request to a company");
                 System.out.println("10. View room repair Requests history");
+                System.out.println("11. Dispatch pending room repairs");
+                System.out.println("12. Export a report to CSV");
+                System.out.println("14. Booking counts from snapshot");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
@@ -321,6 +976,10 @@ public class Hotel {
                    case 8: viewRegularCustomers(esql, authorisedUser); break;
                    case 9: placeRoomRepairRequests(esql, authorisedUser); break;
                    case 10: viewRoomRepairHistory(esql, authorisedUser); break;
+                   case 11: dispatchRoomRepairs(esql, authorisedUser); break;
+                   case 12: exportReport(esql, authorisedUser); break;
+                   case 13: searchAvailableRooms(esql); break;
+                   case 14: viewBookingSnapshotCounts(esql, authorisedUser); break;
                    case 20: usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
@@ -486,6 +1145,51 @@ public class Hotel {
       }
 
    }
+   public static void searchAvailableRooms(Hotel esql) {
+      final int pageSize = 10;
+      try{
+         System.out.print("\tEnter latitude: ");
+         double latitude = Double.parseDouble(in.readLine());
+         System.out.print("\tEnter longitude: ");
+         double longitude = Double.parseDouble(in.readLine());
+         System.out.print("\tEnter search radius in units (blank for 30): ");
+         String radiusSt = in.readLine().trim();
+         double radius = radiusSt.isEmpty() ? 30 : Double.parseDouble(radiusSt);
+         System.out.print("\tEnter the first night of your stay (YYYY-MM-dd): ");
+         String sDate = in.readLine().trim();
+         System.out.print("\tEnter the last night of your stay (blank for one night): ");
+         String eDate = in.readLine().trim();
+         if (eDate.isEmpty())
+            eDate = sDate;
+         if (!isValidDateRange(sDate, eDate)){
+            System.out.print("\tPlease enter valid dates according to the format (YYYY-MM-dd), with the last night on or after the first.\n");
+            return;
+         }
+         System.out.print("\tEnter the maximum price: ");
+         int maxPrice = Integer.parseInt(in.readLine().trim());
+
+         int page = 0;
+         while (true){
+            String query = searchAvailableRoomsQuery(latitude, longitude, radius, sDate, eDate, maxPrice, pageSize, page * pageSize);
+            System.out.print("--------- Available rooms near you (page " + (page + 1) + ") ----------\n");
+            int rowCount = esql.executeQueryAndPrintResult(query);
+            System.out.print("---------------------------------------------------------\n");
+            if (rowCount == 0 && page == 0){
+               System.out.print("\tWe're sorry. No rooms match your search.\n");
+               return;
+            }
+            if (rowCount < pageSize)
+               return;
+            System.out.print("\tShow more rooms? (y/n): ");
+            if (!in.readLine().trim().equalsIgnoreCase("y"))
+               return;
+            page++;
+         }
+      }catch(Exception e){
+         System.out.println("\tPlease enter a valid input.\n");
+         return;
+      }
+   }
    public static void bookRooms(Hotel esql, String authorisedUser) {
       int hotelid = -1; 
       String dateSt = ""; 
@@ -754,6 +1458,132 @@ public class Hotel {
          return; 
       }
    }
+   public static void dispatchRoomRepairs(Hotel esql, String authorisedUser) {
+      try{
+         if (!isManager(esql, authorisedUser)){
+            System.out.print("\tWhoops! We're sorry. This option is only available for managers.\n");
+            return;
+         }
+         System.out.println("----------- New repair work orders -----------\n");
+         int rowCount;
+         synchronized (esql._connection){
+            // only the repairs at this manager's hotels; the background
+            // dispatcher is the one that covers every hotel
+            rowCount = esql.executeQueryAndPrintResult(repairDispatchQuery(REPAIR_DISPATCH_CELL, authorisedUser));
+         }
+         if (rowCount == 0) {
+            System.out.print("\tThere are no pending repairs to dispatch at your hotels.\n");
+         }
+         System.out.println("----------------------------------------------\n");
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+         return;
+      }
+   }
+   public static void exportReport(Hotel esql, String authorisedUser) {
+      try{
+         if (!isManager(esql, authorisedUser)){
+            System.out.print("\tWhoops! We're sorry. This option is only available for managers.\n");
+            return;
+         }
+         System.out.println("...........................");
+         System.out.println("1. Booking history of a hotel");
+         System.out.println("2. Room repair history");
+         System.out.println("3. Regular customers of a hotel");
+         System.out.println("...........................");
+         System.out.println("4. Back");
+
+         String query;
+         switch(readChoice()) {
+            case 1: {
+               int hotelID = readManagedHotel(esql, authorisedUser);
+               if (hotelID < 0) return;
+               System.out.print("\tEnter Starting Booking Date: ");
+               String sDate = in.readLine();
+               System.out.print("\tEnter Ending Booking Date: ");
+               String eDate = in.readLine();
+               if (!isValidDate(sDate) || !isValidDate(eDate)){
+                  System.out.print("\tPlease enter a valid date according to the format (YYYY-MM-dd).\n");
+                  return;
+               }
+               query = String.format("select RoomBookings.bookingID, RoomBookings.customerID, RoomBookings.hotelID, RoomBookings.roomNumber, RoomBookings.bookingDate from RoomBookings where RoomBookings.hotelID = %d and RoomBookings.bookingDate between '%s' and '%s' order by RoomBookings.bookingDate, RoomBookings.bookingID", hotelID, sDate.trim(), eDate.trim());
+               break;
+            }
+            case 2:
+               query = String.format("select RoomRepairs.companyID, RoomRepairs.hotelID, RoomRepairs.roomNumber, RoomRepairs.repairDate from RoomRepairs, RoomRepairRequests where RoomRepairRequests.repairID = RoomRepairs.repairID and RoomRepairRequests.managerID = %s order by RoomRepairs.repairDate desc", authorisedUser);
+               break;
+            case 3: {
+               int hotelID = readManagedHotel(esql, authorisedUser);
+               if (hotelID < 0) return;
+               query = String.format("select Users.userID, Users.name, count(RoomBookings.bookingID) as numberBookings from Users, RoomBookings where Users.userID = RoomBookings.customerID and RoomBookings.hotelID = %d group by Users.userID, Users.name order by count(RoomBookings.bookingID) desc", hotelID);
+               break;
+            }
+            case 4: return;
+            default: System.out.print("Invalid Input, please try again\n"); return;
+         }
+
+         System.out.print("\tEnter file to export to: ");
+         String path = in.readLine().trim();
+         System.out.print("\tCompress with gzip? (y/n): ");
+         boolean gzip = in.readLine().trim().equalsIgnoreCase("y");
+         long rowCount = esql.exportQueryToCsv(query, path, gzip);
+         System.out.println("\tExported " + rowCount + " rows to " + path + "\n");
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+         System.out.println("\tWe're sorry! Please try again.\n");
+         return;
+      }
+   }
+
+   public static void viewBookingSnapshotCounts(Hotel esql, String authorisedUser) {
+      try{
+         if (!isManager(esql, authorisedUser)){
+            System.out.print("\tWhoops! We're sorry. This option is only available for managers.\n");
+            return;
+         }
+         int hotelID = readManagedHotel(esql, authorisedUser);
+         if (hotelID < 0) return;
+         System.out.print("\tEnter Starting Booking Date: ");
+         String sDate = in.readLine();
+         System.out.print("\tEnter Ending Booking Date: ");
+         String eDate = in.readLine();
+         if (!isValidDate(sDate) || !isValidDate(eDate)){
+            System.out.print("\tPlease enter a valid date according to the format (YYYY-MM-dd).\n");
+            return;
+         }
+         System.out.print("\tEnter snapshot file (blank for bookings.snap): ");
+         String path = in.readLine().trim();
+         if (path.isEmpty())
+            path = "bookings.snap";
+
+         // only bookings newer than the snapshot are read from the database
+         BookingSnapshot snapshot = BookingSnapshot.refresh(esql, path);
+         int from = BookingSnapshot.toEpochDay(sDate);
+         int to = BookingSnapshot.toEpochDay(eDate);
+         System.out.println("-------Booking counts from snapshot------\n");
+         System.out.println("\tBookings in snapshot: " + snapshot.rowCount());
+         System.out.println("\tBookings at this hotel: " + snapshot.countForHotel(hotelID));
+         System.out.println("\tBookings at this hotel in date range: " + snapshot.countForHotel(hotelID, from, to));
+         System.out.println("\tBookings at all hotels in date range: " + snapshot.countInRange(from, to));
+         System.out.println("-----------------------------------------\n");
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+         System.out.println("\tWe're sorry! Please try again.\n");
+         return;
+      }
+   }
+
+   // asks for a hotel ID and checks that the manager runs it, -1 if not
+   public static int readManagedHotel(Hotel esql, String authorisedUser) throws IOException, SQLException {
+      System.out.print("\tEnter Hotel ID: ");
+      int hotelID = Integer.parseInt(in.readLine());
+      String query = String.format("select * from Hotel where Hotel.hotelID = %d and Hotel.managerUserID = %s;", hotelID, authorisedUser);
+      if (esql.executeQuery(query) == 0){
+         System.out.print("\tPlease enter a valid hotel.\n");
+         return -1;
+      }
+      return hotelID;
+   }
 
 }//end Hotel
 
@@ -0,0 +1,336 @@
+/*
+ * Measurements for the Hotel helpers
+ * ==================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * This class runs the Hotel helpers against a live database and prints
+ * how they behave under load. It is run the same way as Hotel, with the
+ * name of a measurement and its options after the connection arguments:
+ *
+ *    java -cp classes:lib/pg73jdbc3.jar HotelBench <dbname> <port> <user> coalesce [callers] [distinct] [rounds]
+ *    java -cp classes:lib/pg73jdbc3.jar HotelBench <dbname> <port> <user> dispatch [backlog sizes...]
+ *    java -cp classes:lib/pg73jdbc3.jar HotelBench <dbname> <port> <user> export [rows]
+ *    java -cp classes:lib/pg73jdbc3.jar HotelBench <dbname> <port> <user> search [runs] [radius]
+ *    java -cp classes:lib/pg73jdbc3.jar HotelBench <dbname> <port> <user> snapshot [file] [lookups]
+ *
+ * dispatch adds rows to RoomRepairs and removes them again at the end, so
+ * run it on a test database.
+ *
+ */
+public class HotelBench {
+
+   public static void main (String[] args) {
+      if (args.length < 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            HotelBench.class.getName () +
+            " <dbname> <port> <user> <coalesce|dispatch|export|search|snapshot> [options]");
+         return;
+      }//end if
+
+      Hotel esql = null;
+      try{
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Hotel (args[0], args[1], args[2], "");
+         switch (args[3]){
+            case "coalesce":
+               coalesce(esql, intArg(args, 4, 200), intArg(args, 5, 5), intArg(args, 6, 20));
+               break;
+            case "dispatch":
+               dispatch(esql, args.length > 4 ? Arrays.copyOfRange(args, 4, args.length) : new String[]{"1000", "10000", "50000", "10000", "10000"});
+               break;
+            case "export":
+               export(esql, intArg(args, 4, 10000000));
+               break;
+            case "search":
+               search(esql, intArg(args, 4, 1000), args.length > 5 ? Double.parseDouble(args[5]) : 30);
+               break;
+            case "snapshot":
+               snapshot(esql, args.length > 4 ? args[4] : "bench.snap", intArg(args, 5, 1000));
+               break;
+            default:
+               System.err.println("Unknown measurement: " + args[3]);
+         }
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }
+   }
+
+   private static int intArg(String[] args, int i, int dflt){
+      return args.length > i ? Integer.parseInt(args[i]) : dflt;
+   }
+
+   /*
+    * Fires `callers` concurrent executeQueryAsync calls per round, spread
+    * over `distinct` different viewRooms queries, then prints how many
+    * round-trips they needed. Afterwards checks that a query nobody waits
+    * for any more is cancelled instead of holding the connection.
+    **/
+   public static void coalesce(final Hotel esql, int callers, int distinct, int rounds) throws Exception {
+      final List<String> queries = new ArrayList<String>();
+      for (int i = 0; i < distinct; i++)
+         queries.add(String.format("select distinct Rooms.price, Rooms.roomNumber, case when RoomBookings.bookingDate = '%1$s' then 'unavailable' else 'available' end as availability from Rooms left join roomBookings on roomBookings.roomNumber = Rooms.roomNumber and Rooms.hotelID = RoomBookings.hotelID and RoomBookings.bookingDate = '%1$s' where Rooms.hotelID = %2$d order by Rooms.roomNumber;", "2015-05-12", i + 1));
+
+      long start = System.nanoTime();
+      for (int round = 0; round < rounds; round++){
+         final CountDownLatch go = new CountDownLatch(1);
+         final CountDownLatch done = new CountDownLatch(callers);
+         for (int c = 0; c < callers; c++){
+            final String query = queries.get(c % distinct);
+            Thread t = new Thread(() -> {
+               try{
+                  go.await();
+                  esql.executeQueryAsync(query, 0).get();
+               }catch(Exception e){
+                  System.err.println(e.getMessage());
+               }finally{
+                  done.countDown();
+               }
+            });
+            t.start();
+         }
+         go.countDown();
+         done.await();
+      }
+      long elapsed = System.nanoTime() - start;
+
+      System.out.println("callers per round:   " + callers + " over " + distinct + " distinct queries");
+      System.out.println("rounds:              " + rounds);
+      System.out.println("requests:            " + esql.getAsyncRequestCount());
+      System.out.println("round-trips:         " + esql.getAsyncRoundTripCount());
+      System.out.printf ("coalescing ratio:    %.1f requests per round-trip%n", esql.getCoalescingRatio());
+      System.out.printf ("time per round:      %.2f ms%n", elapsed / 1e6 / rounds);
+
+      // a 5 second query whose only caller gives up after 200 ms must not
+      // delay the next query by the remaining 4.8 seconds
+      CompletableFuture<List<List<String>>> slow = esql.executeQueryAsync("select pg_sleep(5);", 200);
+      try{
+         slow.get();
+      }catch(ExecutionException e){
+         System.out.println("slow query:          " + e.getCause().getClass().getSimpleName());
+      }
+      long t0 = System.nanoTime();
+      esql.executeQueryAsync("select 1;", 0).get();
+      System.out.printf ("next query after it: %.0f ms%n", (System.nanoTime() - t0) / 1e6);
+   }
+
+   /*
+    * For each backlog size: adds that many pending repairs spread over all
+    * rooms and companies and times one dispatch cycle. Dispatched repairs
+    * are kept between sizes, so later cycles run on top of a growing
+    * history; their time should follow the backlog, not the history. At
+    * the end the repairs and work orders it created are removed.
+    **/
+   public static void dispatch(Hotel esql, String[] sizes) throws Exception {
+      int lastRepair = maxOf(esql, "select coalesce(max(repairID), 0) from RoomRepairs;");
+      int lastOrder = maxOf(esql, "select coalesce(max(workOrderID), 0) from RepairWorkOrders;");
+      System.out.println("history\tbacklog\torders\tcycle ms");
+      try{
+         for (String size : sizes){
+            int backlog = Integer.parseInt(size);
+            int history = maxOf(esql, "select count(*) from RoomRepairs where dispatched;");
+            esql.executeUpdate(String.format(
+               "insert into RoomRepairs (companyID, hotelID, roomNumber) " +
+               "select c.companyID, r.hotelID, r.roomNumber from generate_series(0, %d) g, " +
+                  "(select hotelID, roomNumber, row_number() over (order by hotelID, roomNumber) - 1 as k from Rooms) r, " +
+                  "(select companyID, row_number() over (order by companyID) - 1 as k from MaintenanceCompany) c " +
+               "where r.k = g %% (select count(*) from Rooms) " +
+               "and c.k = (g / 7) %% (select count(*) from MaintenanceCompany);", backlog - 1));
+            long t0 = System.nanoTime();
+            List<List<String>> orders = esql.dispatchRepairs(Hotel.REPAIR_DISPATCH_CELL);
+            long elapsed = System.nanoTime() - t0;
+            System.out.printf("%d\t%d\t%d\t%.1f%n", history, backlog, orders.size(), elapsed / 1e6);
+         }
+      }finally{
+         // repairs that were pending before the run become pending again
+         esql.executeUpdate(String.format("update RoomRepairs set dispatched = false where repairID <= %d and repairID in (select repairID from RepairWorkOrderItems where workOrderID > %d);", lastRepair, lastOrder));
+         esql.executeUpdate(String.format("delete from RepairWorkOrderItems where workOrderID > %d;", lastOrder));
+         esql.executeUpdate(String.format("delete from RepairWorkOrders where workOrderID > %d;", lastOrder));
+         esql.executeUpdate(String.format("delete from RoomRepairs where repairID > %d;", lastRepair));
+      }
+   }
+
+   /*
+    * Exports `rows` generated booking rows with exportQueryToCsv (plain and
+    * gzip) and then through the executeQueryAndPrintResult path the reports
+    * use today, with standard out discarded so only the client side is timed.
+    **/
+   public static void export(Hotel esql, int rows) throws Exception {
+      String query = String.format(
+         "select g as bookingID, g %% 1000 as customerID, g %% 100000 as hotelID, g %% 100 as roomNumber, " +
+         "date '2015-01-01' + (g %% 3650) as bookingDate from generate_series(1, %d) g", rows);
+      System.out.println("path\trows\tseconds\trows/s\tMB written\tMB heap after");
+
+      for (boolean gzip : new boolean[]{false, true}){
+         File f = File.createTempFile("export", gzip ? ".csv.gz" : ".csv");
+         try{
+            long t0 = System.nanoTime();
+            long n = esql.exportQueryToCsv(query, f.getPath(), gzip);
+            report(gzip ? "csv.gz" : "csv", n, System.nanoTime() - t0, f.length());
+         }finally{
+            f.delete();
+         }
+      }
+
+      PrintStream stdout = System.out;
+      System.setOut(new PrintStream(new OutputStream(){
+         public void write(int b){}
+         public void write(byte[] b, int off, int len){}
+      }));
+      long t0 = System.nanoTime();
+      try{
+         long n = esql.executeQueryAndPrintResult(query);
+         System.setOut(stdout);
+         report("print", n, System.nanoTime() - t0, 0);
+      }catch(OutOfMemoryError e){
+         System.setOut(stdout);
+         System.out.printf("print\t-\tout of memory after %.1f s%n", (System.nanoTime() - t0) / 1e9);
+      }
+   }
+
+   private static void report(String path, long rows, long nanos, long bytes){
+      Runtime rt = Runtime.getRuntime();
+      System.gc();
+      System.out.printf("%s\t%d\t%.1f\t%.0f\t%.0f\t%.0f%n", path, rows, nanos / 1e9, rows / (nanos / 1e9),
+                        bytes / 1e6, (rt.totalMemory() - rt.freeMemory()) / 1e6);
+   }
+
+   /*
+    * Runs `runs` room searches from random points inside the area covered
+    * by the hotels, for a random stay of 1 to 3 nights and a random price
+    * cap, and prints the latency percentiles of fetching the first page.
+    **/
+   public static void search(Hotel esql, int runs, double radius) throws Exception {
+      List<String> box = esql.executeQueryAndReturnResult(
+         "select min(latitude), max(latitude), min(longitude), max(longitude) from Hotel;").get(0);
+      double minLat = Double.parseDouble(box.get(0)), maxLat = Double.parseDouble(box.get(1));
+      double minLong = Double.parseDouble(box.get(2)), maxLong = Double.parseDouble(box.get(3));
+
+      Random rnd = new Random(42);
+      long[] nanos = new long[runs];
+      long rows = 0;
+      for (int i = -runs / 10; i < runs; i++){
+         // the first runs only warm up the connection and server caches
+         double lat = minLat + rnd.nextDouble() * (maxLat - minLat);
+         double lon = minLong + rnd.nextDouble() * (maxLong - minLong);
+         LocalDate first = LocalDate.of(2015, 1, 1).plusDays(rnd.nextInt(365 * 8));
+         String query = Hotel.searchAvailableRoomsQuery(lat, lon, radius, first.toString(),
+            first.plusDays(rnd.nextInt(3)).toString(), 50 + rnd.nextInt(450), 10, 0);
+         long t0 = System.nanoTime();
+         int n = esql.executeQueryAndReturnResult(query).size();
+         if (i >= 0){
+            nanos[i] = System.nanoTime() - t0;
+            rows += n;
+         }
+      }
+      Arrays.sort(nanos);
+      System.out.printf("searches: %d, radius %.1f, %.1f rooms per page%n", runs, radius, (double) rows / runs);
+      System.out.printf("p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                        nanos[runs / 2] / 1e6, nanos[(int) (runs * 0.99)] / 1e6, nanos[runs - 1] / 1e6);
+   }
+
+   /*
+    * Builds (or refreshes) a booking snapshot, then answers the same
+    * random lookups through JDBC and through the snapshot: per-hotel counts
+    * in a date range, per-customer counts and all bookings in a date range.
+    * Each is run once to warm up and once timed; the snapshot runs also
+    * report the bytes allocated by the scanning thread.
+    **/
+   public static void snapshot(Hotel esql, String path, int lookups) throws Exception {
+      long t0 = System.nanoTime();
+      BookingSnapshot snap = BookingSnapshot.refresh(esql, path);
+      System.out.printf("refresh (new rows only): %.1f ms, %d rows in snapshot%n", (System.nanoTime() - t0) / 1e6, snap.rowCount());
+      t0 = System.nanoTime();
+      BookingSnapshot.refresh(esql, path);
+      System.out.printf("refresh with nothing new: %.1f ms%n", (System.nanoTime() - t0) / 1e6);
+
+      int maxHotel = maxOf(esql, "select coalesce(max(hotelID), 0) from Hotel;");
+      int maxCustomer = maxOf(esql, "select coalesce(max(userID), 0) from Users;");
+      Random rnd = new Random(42);
+      int[] hotels = new int[lookups], customers = new int[lookups], from = new int[lookups], to = new int[lookups];
+      int firstDay = BookingSnapshot.toEpochDay("2000-01-01");
+      for (int i = 0; i < lookups; i++){
+         hotels[i] = 1 + rnd.nextInt(Math.max(1, maxHotel));
+         customers[i] = 1 + rnd.nextInt(Math.max(1, maxCustomer));
+         from[i] = firstDay + rnd.nextInt(365 * 20);
+         to[i] = from[i] + rnd.nextInt(365);
+      }
+
+      System.out.println("lookup\tJDBC us/op\tsnapshot us/op\tsnapshot bytes allocated");
+      for (String kind : new String[]{"hotel+dates", "customer", "dates"}){
+         double jdbc = 0, mapped = 0;
+         long allocated = 0;
+         for (int pass = 0; pass < 2; pass++){
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++)
+               esql.executeQueryAndReturnResult(jdbcLookup(kind, hotels[i], customers[i], from[i], to[i]));
+            jdbc = (System.nanoTime() - start) / 1e3 / lookups;
+
+            long bytes = allocatedBytes();
+            long sink = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++){
+               switch (kind){
+                  case "hotel+dates": sink += snap.countForHotel(hotels[i], from[i], to[i]); break;
+                  case "customer": sink += snap.countForCustomer(customers[i]); break;
+                  default: sink += snap.countInRange(from[i], to[i]); break;
+               }
+            }
+            mapped = (System.nanoTime() - start) / 1e3 / lookups;
+            allocated = allocatedBytes() - bytes;
+            if (sink < 0) System.out.println(sink);
+         }
+         System.out.printf("%s\t%.1f\t%.3f\t%d%n", kind, jdbc, mapped, allocated);
+      }
+   }
+
+   private static String jdbcLookup(String kind, int hotel, int customer, int from, int to){
+      String fromDate = LocalDate.ofEpochDay(from).toString();
+      String toDate = LocalDate.ofEpochDay(to).toString();
+      switch (kind){
+         case "hotel+dates":
+            return String.format("select count(*) from RoomBookings where hotelID = %d and bookingDate between '%s' and '%s';", hotel, fromDate, toDate);
+         case "customer":
+            return String.format("select count(*) from RoomBookings where customerID = %d;", customer);
+         default:
+            return String.format("select count(*) from RoomBookings where bookingDate between '%s' and '%s';", fromDate, toDate);
+      }
+   }
+
+   // bytes allocated by this thread so far, -1 if the JVM cannot tell
+   private static long allocatedBytes(){
+      ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+      if (mx instanceof com.sun.management.ThreadMXBean)
+         return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+      return -1;
+   }
+
+   private static int maxOf(Hotel esql, String query) throws Exception {
+      return Integer.parseInt(esql.executeQueryAndReturnResult(query).get(0).get(0).trim());
+   }
+
+}//end HotelBench
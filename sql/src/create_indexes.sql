@@ -0,0 +1,12 @@
+--used by the repair dispatcher to find repairs not yet in a work order,
+--so a cycle only touches the open backlog and not every repair ever made
+CREATE INDEX roomrepairs_pending_idx ON RoomRepairs(hotelID) WHERE NOT dispatched;
+
+--used by the room search to find hotels inside the search bounding box
+CREATE INDEX hotel_location_idx ON Hotel(latitude, longitude);
+
+--used by the room search to filter a hotel's rooms by price
+CREATE INDEX rooms_price_idx ON Rooms(hotelID, price);
+
+--used to check whether a room is booked on a date or in a date range
+CREATE INDEX roombookings_room_date_idx ON RoomBookings(hotelID, roomNumber, bookingDate);
@@ -5,6 +5,8 @@ DROP TABLE IF EXISTS RoomBookings CASCADE;
 DROP TABLE IF EXISTS RoomRepairs CASCADE;
 DROP TABLE IF EXISTS RoomRepairRequests CASCADE;
 DROP TABLE IF EXISTS RoomUpdatesLog CASCADE;
+DROP TABLE IF EXISTS RepairWorkOrders CASCADE;
+DROP TABLE IF EXISTS RepairWorkOrderItems CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50),
@@ -60,6 +62,7 @@ CREATE TABLE RoomRepairs (
                             hotelID integer NOT NULL,
                             roomNumber integer NOT NULL, 
                             repairDate date NOT NULL,
+                            dispatched boolean NOT NULL DEFAULT false, ---set once the repair is part of a work order
                             PRIMARY KEY(repairID),
                             FOREIGN KEY(companyID) REFERENCES MaintenanceCompany(companyID),
                             FOREIGN KEY(hotelID, roomNumber) REFERENCES Rooms(hotelID, roomNumber)
@@ -88,6 +91,28 @@ CREATE TABLE RoomUpdatesLog (
 );
 
 
+--The following tables store batched work orders created by the repair dispatcher.
+--A repair is pending until it appears in RepairWorkOrderItems.
+--cellLat/cellLong identify the group of nearby hotels the order covers.
+CREATE TABLE RepairWorkOrders (
+                            workOrderID serial,
+                            companyID integer NOT NULL,
+                            cellLat integer,
+                            cellLong integer,
+                            numRepairs integer NOT NULL,
+                            dispatchedOn timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+                            PRIMARY KEY(workOrderID),
+                            FOREIGN KEY(companyID) REFERENCES MaintenanceCompany(companyID)
+);
+
+CREATE TABLE RepairWorkOrderItems (
+                            workOrderID integer NOT NULL,
+                            repairID integer NOT NULL,
+                            PRIMARY KEY(repairID),
+                            FOREIGN KEY(workOrderID) REFERENCES RepairWorkOrders(workOrderID),
+                            FOREIGN KEY(repairID) REFERENCES RoomRepairs(repairID)
+);
+
 
 ---The following is the definition of a user-defined sql function for calculating the distance between two lat-long pairs.
 CREATE OR REPLACE FUNCTION calculate_distance(lat1 decimal, long1 decimal, lat2 decimal, long2 decimal)
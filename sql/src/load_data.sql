@@ -20,7 +20,7 @@ FROM '/home/csmajs/nrahm009/phase3/data/bookings.csv'
 WITH DELIMITER ',' CSV HEADER;
 ALTER SEQUENCE RoomBookings_bookingID_seq RESTART 501; 
 
-COPY RoomRepairs
+COPY RoomRepairs (repairID, companyID, hotelID, roomNumber, repairDate)
 FROM '/home/csmajs/nrahm009/phase3/data/roomRepairs.csv'
 WITH DELIMITER ',' CSV HEADER;
 ALTER SEQUENCE roomRepairs_repairID_seq RESTART 11;